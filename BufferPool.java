@@ -4,14 +4,37 @@ import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
 
 /**
  * Contains a pool of buffers that can store byte data from a binary file.
  * When requests for data that isn't stored in a buffer is made, the pool will
  * pull a block of data from the file into an empty buffer, or overrite the data
  * in the least recently used buffer (writing it's contents to the file if
- * they've been changed).
+ * they've been changed).  If a scratch file is given, changed buffers are
+ * written there instead and the original file is only read from.
+ * <p>
+ * Given a memory budget, the pool resizes itself between one buffer and as
+ * many as the budget allows.  Every RESIZE_INTERVAL lookups it estimates how
+ * many misses a pool of double the size would have saved, using a sample of
+ * recently evicted block IDs, and how many extra misses a pool of half the
+ * size would have taken, from hits in the older half of the list.  It grows
+ * or shrinks accordingly.  When the JVM reports the heap is nearly full it
+ * halves itself and doesn't grow again until heap usage is back under the
+ * threshold.
  *  @author Joshua Rush (jdrush89)
  *  @author Benjamin Roble (broble)
  *  @version Nov 2, 2011
@@ -24,6 +47,10 @@ public class BufferPool
     private int numBuffers;
     //the binary file that the bufferpool interfaces with
     private RandomAccessFile myFile;
+    //the file changed blocks are written to, or null to write to myFile
+    private RandomAccessFile scratchFile;
+    //the blockIDs of the blocks that have been written to the scratch file
+    private HashSet<Long> scratchBlocks;
 
     //number of cache hits
     private int cacheHits = 0;
@@ -37,22 +64,126 @@ public class BufferPool
      //number of disk writes
     private int diskWrites = 0;
 
+    //number of calls made into the pool to access records
+    private int poolRequests = 0;
+
+    //the most buffers the memory budget allows, or 0 for a fixed size pool
+    private int maxBuffers = 0;
+    //the most buffers the memory budget allows, even while heap usage is high
+    private int budgetBuffers = 0;
+    //whether growth is held back because heap usage is over HEAP_THRESHOLD
+    private boolean heapLimited = false;
+    //a sample of the blockIDs most recently evicted from the pool
+    private LinkedHashSet<Long> ghostBlocks;
+    //number of lookups since the pool size was last reviewed
+    private int windowLookups = 0;
+    //number of misses since the pool size was last reviewed
+    private int windowMisses = 0;
+    //estimated misses since the last review that a pool of double the size
+    //would have saved, from misses on recently evicted blocks
+    private long windowGhostSaves = 0;
+    //number of hits in the older half of the pool since the last review
+    private int windowTailHits = 0;
+    //total number of lookups, used to place resizes in the log
+    private long totalLookups = 0;
+    //set by the JVM when the heap crosses its usage threshold
+    private volatile boolean memoryLow = false;
+    //listens for heap usage notifications while the pool is adaptive
+    private NotificationListener memoryListener;
+    //the usage thresholds the heap memory pools had before watchHeap set them
+    private HashMap<MemoryPoolMXBean, Long> oldThresholds =
+        new HashMap<MemoryPoolMXBean, Long>();
+    //a line for every time the pool changed size
+    private ArrayList<String> resizeLog = new ArrayList<String>();
+
     /**
      * A constant for the number of bytes a buffer can hold
      */
     public static final int BUFFER_SIZE = 4096;
+    /**
+     * The number of lookups between reviews of the pool size
+     */
+    public static final int RESIZE_INTERVAL = 4096;
+    /**
+     * One in this many blocks is tracked after eviction, once the pool holds
+     * at least MIN_SAMPLED_BUFFERS buffers
+     */
+    public static final int GHOST_SAMPLE = 4;
+    /**
+     * Pools smaller than this track every evicted block
+     */
+    public static final int MIN_SAMPLED_BUFFERS = 64;
+    /**
+     * The fraction of lookups a larger pool must save from missing to grow
+     */
+    public static final double GROW_THRESHOLD = 0.02;
+    /**
+     * The fraction of lookups a smaller pool may add as misses and still
+     * shrink.  Kept below GROW_THRESHOLD so the pool doesn't flip back and forth
+     */
+    public static final double SHRINK_THRESHOLD = 0.01;
+    /**
+     * The fraction of the heap in use at which the pool is told to shrink
+     */
+    public static final double HEAP_THRESHOLD = 0.9;
     /**
      * Create a new BufferPool with the specified number of buffers.
      * @param pNumBuffs the number of buffers this BufferPool can hold
      * @param pFile the binary file this BufferPool interfaces with
      */
     public BufferPool(int pNumBuffs, File pFile)
+    {
+        this(pNumBuffs, pFile, null);
+    }
+    /**
+     * Create a new BufferPool with the specified number of buffers that
+     * leaves its binary file unchanged, writing changed blocks to a scratch
+     * file instead.
+     * @param pNumBuffs the number of buffers this BufferPool can hold
+     * @param pFile the binary file this BufferPool interfaces with
+     * @param pScratchFile the file changed blocks are written to, or null to
+     * write them back to pFile
+     */
+    public BufferPool(int pNumBuffs, File pFile, File pScratchFile)
+    {
+        this(pNumBuffs, pFile, pScratchFile, 0);
+    }
+    /**
+     * Create a new BufferPool that starts with the specified number of buffers
+     * and resizes itself within a memory budget.
+     * @param pNumBuffs the number of buffers this BufferPool starts with
+     * @param pFile the binary file this BufferPool interfaces with
+     * @param pScratchFile the file changed blocks are written to, or null to
+     * write them back to pFile
+     * @param pMemoryBudget the most bytes of buffers the pool may hold, or 0
+     * to keep the pool at pNumBuffs buffers
+     */
+    public BufferPool(int pNumBuffs, File pFile, File pScratchFile,
+        long pMemoryBudget)
     {
         bufferList = new LinkedList<BufferNode>();
         numBuffers = pNumBuffs;
+        if (pMemoryBudget > 0)
+        {
+            maxBuffers = (int)Math.max(1,
+                Math.min(pMemoryBudget / BUFFER_SIZE, Integer.MAX_VALUE));
+            budgetBuffers = maxBuffers;
+            numBuffers = Math.max(1, Math.min(numBuffers, maxBuffers));
+            ghostBlocks = new LinkedHashSet<Long>();
+            watchHeap();
+            resizeLog.add("Pool started with " + numBuffers + " buffers, "
+                + maxBuffers + " allowed");
+        }
         try
         {
-            myFile = new RandomAccessFile(pFile, "rw");
+            if (pScratchFile == null)
+                myFile = new RandomAccessFile(pFile, "rw");
+            else
+            {
+                myFile = new RandomAccessFile(pFile, "r");
+                scratchFile = new RandomAccessFile(pScratchFile, "rw");
+                scratchBlocks = new HashSet<Long>();
+            }
         }
         catch (FileNotFoundException e)
         {
@@ -69,26 +200,256 @@ public class BufferPool
      * @return the short that is thee key for the specified record
      */
     public short requestKey(long recNum) {
+        poolRequests++;
         BufferNode bn = bufferContains(recNum);
         if(bn == null) bn = bufferRead(recNum);
 
         return getKey(bn, recNum);
     }
+    /**
+     * Fill out with the keys of the records in recs, in the same order.
+     * Consecutive records that fall in the same block share a single lookup,
+     * so callers should list records from the same block next to each other.
+     * @param recs the numbers of the records to get the keys from
+     * @param out the array to store the keys in, at least as long as recs
+     */
+    public void requestKeys(long[] recs, short[] out) {
+        poolRequests++;
+        BufferNode bn = null;
+        for(int k = 0; k < recs.length; k++) {
+            if(bn == null || !inBlock(bn, recs[k])) {
+                bn = bufferContains(recs[k]);
+                if(bn == null) bn = bufferRead(recs[k]);
+            }
+            out[k] = getKey(bn, recs[k]);
+        }
+    }
+    /**
+     * Swap records i and j if the key of record j is greater than the key of
+     * record i.  Both records are looked up once and the swap is done directly
+     * in the buffers.
+     * @param i the number of the record that should hold the greater key
+     * @param j the number of the record to compare against it
+     * @return whether the records were swapped
+     */
+    public boolean compareAndSwapIfGreater(long i, long j) {
+        poolRequests++;
+        BufferNode iNode = bufferContains(i);
+        if(iNode == null) iNode = bufferRead(i);
+        byte[] iRec = iNode.getBuffer().getRecord((int)(i * 4 - iNode.getBlockID()));
+
+        BufferNode jNode = iNode;
+        if(!inBlock(jNode, j)) {
+            jNode = bufferContains(j);
+            if(jNode == null) jNode = bufferRead(j);
+        }
+        if(getKey(jNode, j) <= makeShort(iRec[0], iRec[1]))
+            return false;
+
+        byte[] jRec = jNode.getBuffer().getRecord((int)(j * 4 - jNode.getBlockID()));
+        jNode.getBuffer().setRecord((int)(j * 4 - jNode.getBlockID()), iRec);
+        jNode.setChanged(true);
+        //reading j's block may have pushed i's block out of a small pool
+        if(!bufferList.contains(iNode)) {
+            iNode = bufferContains(i);
+            if(iNode == null) iNode = bufferRead(i);
+        }
+        iNode.getBuffer().setRecord((int)(i * 4 - iNode.getBlockID()), jRec);
+        iNode.setChanged(true);
+        return true;
+    }
+    /**
+     * Return whether the specified record is held in the given node's block.
+     * @param bNode the node to check
+     * @param recNum the record number to look for
+     * @return whether the record is in the node's block
+     */
+    private boolean inBlock(BufferNode bNode, long recNum) {
+        return bNode.getBlockID() <= recNum*4 && bNode.getBlockID() + BUFFER_SIZE > recNum*4;
+    }
     /**
      * Returns the node that contains the specified record.
      * @param recNum the record number to search for
      * @return the bufferNode the record is in, or null if it isn't found
      */
     private BufferNode bufferContains(long recNum) {
+        if (maxBuffers > 0)
+            reviewSize();
+        int index = 0;
         for(BufferNode bNode : bufferList) {
-            if(bNode.getBlockID() <= recNum*4 && bNode.getBlockID() + BUFFER_SIZE > recNum*4) {
+            if(inBlock(bNode, recNum)) {
                 cacheHits++;
+                if (index >= numBuffers / 2)
+                    windowTailHits++;
                 return bNode;
             }
+            index++;
         }
         cacheMisses++;
+        windowMisses++;
+        //a sampled ghost hit stands for sampleRate() misses
+        if (maxBuffers > 0 && ghostBlocks.remove((recNum * 4 / BUFFER_SIZE) * BUFFER_SIZE))
+            windowGhostSaves += sampleRate();
         return null;
     }
+    /**
+     * Count a lookup and, every RESIZE_INTERVAL lookups, grow or shrink the
+     * pool based on the misses seen since the last review.  If the heap is
+     * nearly full, halve the pool right away.
+     */
+    private void reviewSize()
+    {
+        windowLookups++;
+        totalLookups++;
+        if (memoryLow)
+        {
+            memoryLow = false;
+            resize(numBuffers / 2,
+                "heap usage threshold reached, growth held until it drops");
+            //the ghosts of the buffers just dropped would grow it right back
+            maxBuffers = numBuffers;
+            heapLimited = true;
+        }
+        if (windowLookups < RESIZE_INTERVAL)
+            return;
+        if (heapLimited && !heapOverThreshold())
+        {
+            maxBuffers = budgetBuffers;
+            heapLimited = false;
+            resizeLog.add("Pool may grow to " + maxBuffers
+                + " buffers again after " + totalLookups
+                + " lookups: heap usage back under threshold");
+        }
+        //the sampled estimate can't save more misses than there were
+        long savedByGrowing = Math.min(windowGhostSaves, windowMisses);
+        if (numBuffers < maxBuffers
+            && savedByGrowing > windowLookups * GROW_THRESHOLD)
+        {
+            resize(numBuffers * 2, "double would save " + savedByGrowing
+                + " of " + windowMisses + " misses");
+        }
+        else if (numBuffers > 1 && bufferList.size() >= numBuffers
+            && windowTailHits <= windowLookups * SHRINK_THRESHOLD)
+        {
+            resize(numBuffers / 2, "half would add " + windowTailHits
+                + " misses in " + windowLookups + " lookups");
+        }
+        windowLookups = 0;
+        windowMisses = 0;
+        windowGhostSaves = 0;
+        windowTailHits = 0;
+    }
+    /**
+     * Change the number of buffers in the pool, keeping it between one buffer
+     * and the budget, and evicting buffers from the end of the list if the
+     * pool shrinks.
+     * @param pNumBuffs the new number of buffers
+     * @param reason why the pool is being resized, for the log
+     */
+    private void resize(int pNumBuffs, String reason)
+    {
+        int newSize = Math.max(1, Math.min(pNumBuffs, maxBuffers));
+        if (newSize == numBuffers)
+            return;
+        int oldRate = sampleRate();
+        numBuffers = newSize;
+        //ghosts sampled at the old rate would skew the new estimate
+        if (sampleRate() != oldRate)
+            ghostBlocks.clear();
+        while (bufferList.size() > numBuffers)
+            evict();
+        resizeLog.add("Pool resized to " + numBuffers + " buffers after "
+            + totalLookups + " lookups: " + reason);
+    }
+    /**
+     * Remove the buffer at the end of the list, writing its contents if
+     * they've been changed, and remember its block if it is sampled.
+     */
+    private void evict()
+    {
+        BufferNode oldNode = bufferList.removeLast();
+        if(oldNode.isChanged())
+            writeToFile(oldNode);
+        if (maxBuffers > 0 && isSampled(oldNode.getBlockID()))
+        {
+            ghostBlocks.add(oldNode.getBlockID());
+            //the ghosts stand for the blocks a pool twice the size would hold
+            Iterator<Long> oldest = ghostBlocks.iterator();
+            while (ghostBlocks.size() > numBuffers / sampleRate())
+            {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+    /**
+     * Return whether the block is one of the blocks tracked after eviction.
+     * Blocks are picked by a hash of their ID so a block is always either
+     * tracked or not.
+     * @param blockID the byte position where the block starts
+     * @return whether the block is sampled
+     */
+    private boolean isSampled(long blockID)
+    {
+        long hash = (blockID / BUFFER_SIZE) * 0x9E3779B97F4A7C15L;
+        return (hash >>> 32) % sampleRate() == 0;
+    }
+    /**
+     * Return how many blocks each tracked block stands for.  Small pools
+     * track every block, since a 1 in GHOST_SAMPLE sample of a few blocks
+     * says little about the rest.
+     * @return the sample rate
+     */
+    private int sampleRate()
+    {
+        if (numBuffers < MIN_SAMPLED_BUFFERS)
+            return 1;
+        return GHOST_SAMPLE;
+    }
+    /**
+     * Return whether any heap memory pool watched by watchHeap is still at or
+     * over its usage threshold.
+     * @return whether heap usage is over the threshold
+     */
+    private boolean heapOverThreshold()
+    {
+        for (MemoryPoolMXBean memPool : oldThresholds.keySet())
+        {
+            if (memPool.isUsageThresholdExceeded())
+                return true;
+        }
+        return false;
+    }
+    /**
+     * Ask the JVM to report when any heap memory pool passes HEAP_THRESHOLD
+     * of its maximum size, and mark the pool to shrink when it does.  The
+     * thresholds are shared by the whole JVM, so the old ones are kept for
+     * close to put back.
+     */
+    private void watchHeap()
+    {
+        for (MemoryPoolMXBean memPool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (memPool.getType() == MemoryType.HEAP
+                && memPool.isUsageThresholdSupported()
+                && memPool.getUsage().getMax() > 0)
+            {
+                oldThresholds.put(memPool, memPool.getUsageThreshold());
+                memPool.setUsageThreshold(
+                    (long)(memPool.getUsage().getMax() * HEAP_THRESHOLD));
+            }
+        }
+        memoryListener = new NotificationListener() {
+            public void handleNotification(Notification notif, Object handback)
+            {
+                if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED
+                    .equals(notif.getType()))
+                    memoryLow = true;
+            }
+        };
+        ((NotificationEmitter)ManagementFactory.getMemoryMXBean())
+            .addNotificationListener(memoryListener, null, null);
+    }
 
     // ----------------------------------------------------------
     /**
@@ -116,16 +477,10 @@ public class BufferPool
         BufferNode currentNode;
 
 
-        // if our bufferPool is full, overwrite an existing buffer
-        if(bufferList.size() >= numBuffers) {
-            currentNode= bufferList.getLast();
-            //if a buffer was changed, we need to write it back to the file
-            //before overwriting the buffer
-            if(currentNode.isChanged())
-                writeToFile(currentNode);
-
-            bufferList.removeLast();
-        }
+        // if our bufferPool is full, overwrite an existing buffer, writing
+        // it back to the file first if it was changed
+        while(bufferList.size() >= numBuffers)
+            evict();
         currentNode = new BufferNode();
 
 
@@ -134,10 +489,14 @@ public class BufferPool
 
         currentNode.setBlockID(startReadingPosition);
         //seek to and read the data
+        //blocks that have been changed before are read back from scratch
+        RandomAccessFile source = myFile;
+        if (scratchFile != null && scratchBlocks.contains(startReadingPosition))
+            source = scratchFile;
         try
         {
-            myFile.seek(startReadingPosition);
-            myFile.read(currentNode.getBuffer().getData());
+            source.seek(startReadingPosition);
+            source.read(currentNode.getBuffer().getData());
             diskReads++;
         }
         catch (IOException e)
@@ -159,10 +518,16 @@ public class BufferPool
      * @param writeNode the node containing the buffer to be written
      */
     private void writeToFile(BufferNode writeNode) {
+        RandomAccessFile dest = myFile;
+        if (scratchFile != null)
+        {
+            dest = scratchFile;
+            scratchBlocks.add(writeNode.getBlockID());
+        }
         try
         {
-            myFile.seek(writeNode.getBlockID());
-            myFile.write(writeNode.getBuffer().getData());
+            dest.seek(writeNode.getBlockID());
+            dest.write(writeNode.getBuffer().getData());
             diskWrites++;
         }
         catch (IOException e)
@@ -180,12 +545,66 @@ public class BufferPool
      */
     public void setRecord(long recordNum, byte[] data)
     {
+        poolRequests++;
         BufferNode node = bufferContains(recordNum);
         if (node == null)
             node = bufferRead(recordNum);
         node.getBuffer().setRecord((int)(recordNum * 4 - node.getBlockID()), data);
         node.setChanged(true);
     }
+    /**
+     * Copy count consecutive records, starting at recordNum, into dest.  Each
+     * block the records span is looked up once.  If a block isn't already in
+     * a buffer, read it in.
+     * @param recordNum the number of the first record to copy
+     * @param count the number of records to copy
+     * @param dest the byte array to copy the records into
+     * @param destPos the position in dest to copy the first record to
+     */
+    public void getRecords(long recordNum, int count, byte[] dest, int destPos)
+    {
+        poolRequests++;
+        while (count > 0)
+        {
+            BufferNode node = bufferContains(recordNum);
+            if (node == null)
+                node = bufferRead(recordNum);
+            int pos = (int)(recordNum * 4 - node.getBlockID());
+            int inBlock = Math.min(count, (BUFFER_SIZE - pos) / 4);
+            System.arraycopy(node.getBuffer().getData(), pos, dest, destPos,
+                inBlock * 4);
+            recordNum += inBlock;
+            count -= inBlock;
+            destPos += inBlock * 4;
+        }
+    }
+    /**
+     * Overwrite count consecutive records, starting at recordNum, with the
+     * records in src.  Each block the records span is looked up once.  If a
+     * block isn't already in a buffer, read it in.
+     * @param recordNum the number of the first record to overwrite
+     * @param count the number of records to overwrite
+     * @param src the byte array holding the new records
+     * @param srcPos the position in src of the first new record
+     */
+    public void setRecords(long recordNum, int count, byte[] src, int srcPos)
+    {
+        poolRequests++;
+        while (count > 0)
+        {
+            BufferNode node = bufferContains(recordNum);
+            if (node == null)
+                node = bufferRead(recordNum);
+            int pos = (int)(recordNum * 4 - node.getBlockID());
+            int inBlock = Math.min(count, (BUFFER_SIZE - pos) / 4);
+            System.arraycopy(src, srcPos, node.getBuffer().getData(), pos,
+                inBlock * 4);
+            node.setChanged(true);
+            recordNum += inBlock;
+            count -= inBlock;
+            srcPos += inBlock * 4;
+        }
+    }
     /**
      * Return a byte array containing the specifed record.  If the record isn't
      * already in a buffer pool, read it in.
@@ -194,6 +613,7 @@ public class BufferPool
      */
     public byte[] getRecord(long recordNum)
     {
+        poolRequests++;
         BufferNode node = bufferContains(recordNum);
         if (node == null)
             node = bufferRead(recordNum);
@@ -212,6 +632,41 @@ public class BufferPool
             }
         }
     }
+    /**
+     * Close the binary file and the scratch file, if there is one, and put
+     * back the heap usage thresholds.  Changed buffers are not written, so
+     * call flush first to keep them.
+     */
+    public void close()
+    {
+        if (memoryListener != null)
+        {
+            try
+            {
+                ((NotificationEmitter)ManagementFactory.getMemoryMXBean())
+                    .removeNotificationListener(memoryListener);
+            }
+            catch (ListenerNotFoundException e)
+            {
+                e.printStackTrace();
+            }
+            memoryListener = null;
+        }
+        for (MemoryPoolMXBean memPool : oldThresholds.keySet())
+            memPool.setUsageThreshold(oldThresholds.get(memPool));
+        oldThresholds.clear();
+        try
+        {
+            myFile.close();
+            if (scratchFile != null)
+                scratchFile.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not close file");
+            e.printStackTrace();
+        }
+    }
     /**
      * Print out the first record from each block of BUFFER_SIZE.  Print the
      * records 8 to a line, keys and values separated by spaces, and formatted
@@ -281,5 +736,35 @@ public class BufferPool
     public int getDiskWrites() {
         return diskWrites;
     }
+    /**
+     * Return the number of calls made into the pool to access records.
+     * @return pool requests
+     */
+    public int getPoolRequests() {
+        return poolRequests;
+    }
+    /**
+     * Return the number of times a block was looked up in the pool, whether
+     * it was found or not.  A pool request that finds several records in the
+     * same block looks it up once.
+     * @return block lookups
+     */
+    public long getBlockLookups() {
+        return (long)cacheHits + cacheMisses;
+    }
+    /**
+     * Return the number of buffers the pool can currently hold.
+     * @return the number of buffers
+     */
+    public int getNumBuffers() {
+        return numBuffers;
+    }
+    /**
+     * Return a line for every time the pool changed size, oldest first.
+     * @return the resize log
+     */
+    public ArrayList<String> getResizeLog() {
+        return resizeLog;
+    }
 
 }
@@ -1,6 +1,7 @@
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 
 /**
  * // -------------------------------------------------------------------------
@@ -30,18 +31,83 @@ public class Client
      * will be saved
      */
     public Client(String fileName, String numBuffs, String pStatFile)
+    {
+        this(fileName, numBuffs, pStatFile, null, null, false);
+    }
+    /**
+     * Create a new Client to sort a binary file using a heapsort algorithm.
+     * If an output file is given, the sorted records are streamed to it in
+     * ascending or descending order and the binary file is left unchanged;
+     * blocks the sort
+     * changes are kept in a new temporary file next to the output, which is
+     * deleted when the sort is done or the program exits.
+     * @param fileName the name of the binary file to sort
+     * @param numBuffs the number of buffers to be used in the BufferPool
+     * @param pStatFile the name of the file where statistics about the sort
+     * will be saved
+     * @param outName the name of the file to write the sorted records to, or
+     * null to sort the binary file in place
+     * @param memoryBudget the most bytes of buffers the BufferPool may grow
+     * to, starting from numBuffs, or null to keep numBuffs buffers
+     * @param descending whether the output file is sorted largest first
+     */
+    public Client(String fileName, String numBuffs, String pStatFile,
+        String outName, String memoryBudget, boolean descending)
     {
         File heapFile = new File(fileName);
-        BufferPool buffPool = new BufferPool(Integer.parseInt(numBuffs), heapFile);
+        File scratch = null;
+        if (outName != null)
+        {
+            try
+            {
+                scratch = File.createTempFile("heapsort", ".scratch",
+                    new File(outName).getAbsoluteFile().getParentFile());
+                scratch.deleteOnExit();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Could not create a scratch file");
+                e.printStackTrace();
+                return;
+            }
+        }
+        long budget = 0;
+        if (memoryBudget != null)
+            budget = Long.parseLong(memoryBudget);
+        BufferPool buffPool = new BufferPool(Integer.parseInt(numBuffs),
+            heapFile, scratch, budget);
         File statFile = new File(pStatFile);
         MaxHeap heapSorter = new MaxHeap(buffPool, heapFile.length() / 4);
+        int buildReads = buffPool.getDiskReads();
+        int buildRequests = buffPool.getPoolRequests();
+        long buildLookups = buffPool.getBlockLookups();
+        SortedOutputWriter outWriter = null;
         long startTime = System.currentTimeMillis();
-        heapSorter.heapsort();
-        buffPool.flush();
+        if (outName == null)
+        {
+            heapSorter.heapsort();
+            buffPool.flush();
+        }
+        else
+        {
+            outWriter = new SortedOutputWriter(new File(outName),
+                heapFile.length() / 4, !descending);
+            heapSorter.heapsort(outWriter);
+            outWriter.close();
+        }
         long timeElapsed = System.currentTimeMillis() - startTime;
 
-        writeStats(statFile, timeElapsed, fileName, buffPool);
+        writeStats(statFile, timeElapsed, fileName, buffPool, buildReads,
+            buildRequests, buildLookups, heapFile.length() / 4, outWriter);
+        if (scratch != null)
+        {
+            buffPool.close();
+            scratch.delete();
+            //the sorted records are only in the output file
+            buffPool = new BufferPool(1, new File(outName));
+        }
         buffPool.print();
+        buffPool.close();
     }
     /**
      * Write the stats from the heapsort to the statFile.
@@ -49,8 +115,18 @@ public class Client
      * @param timeElapsed the amount of time it took to sort the file.
      * @param fileName the name of the stat file
      * @param buffPool the bufferPool whose stats are to be printed
+     * @param buildReads the number of disk reads made while building the heap
+     * @param buildRequests the number of pool requests made while building
+     * the heap
+     * @param buildLookups the number of block lookups made while building the
+     * heap
+     * @param numRecords the number of records removed from the heap
+     * @param outWriter the writer the sorted records were streamed to, or
+     * null if the file was sorted in place
      */
-    private void writeStats(File statFile, long timeElapsed, String fileName, BufferPool buffPool)
+    private void writeStats(File statFile, long timeElapsed, String fileName,
+        BufferPool buffPool, int buildReads, int buildRequests,
+        long buildLookups, long numRecords, SortedOutputWriter outWriter)
     {
         try{
             // Create file
@@ -65,8 +141,38 @@ public class Client
             out.newLine();
             out.append("Disk Reads:"+buffPool.getDiskReads());
             out.newLine();
+            out.append("Buildheap Disk Reads:"+buildReads);
+            out.newLine();
+            out.append("Sort Disk Reads:"+(buffPool.getDiskReads() - buildReads));
+            out.newLine();
             out.append("Disk Writes: "+buffPool.getDiskWrites());
             out.newLine();
+            out.append("Pool Requests: "+buffPool.getPoolRequests());
+            out.newLine();
+            out.append("Block Lookups: "+buffPool.getBlockLookups());
+            out.newLine();
+            //the sort phase is one removemax per record
+            if (numRecords > 0)
+            {
+                out.append("Pool Requests per removemax: "+String.format("%.2f",
+                    (double)(buffPool.getPoolRequests() - buildRequests)
+                    / numRecords));
+                out.newLine();
+                out.append("Block Lookups per removemax: "+String.format("%.2f",
+                    (double)(buffPool.getBlockLookups() - buildLookups)
+                    / numRecords));
+                out.newLine();
+            }
+            if (outWriter != null)
+            {
+                out.append("Output Block Writes: "+outWriter.getBlockWrites());
+                out.newLine();
+            }
+            for (String resize : buffPool.getResizeLog())
+            {
+                out.append(resize);
+                out.newLine();
+            }
             out.append("Heapsort completed in "+timeElapsed+" ms.");
             out.newLine();
 
@@ -11,6 +11,11 @@ public class MaxHeap {
     private long n;       // # of things in heap
     private long size;    // the max size of the heap
     private BufferPool buffPool;    //the BufferPool the heap communicates with
+    // the most levels a subtree can have and still fit in one block
+    private static final int SUBTREE_LEVELS =
+        31 - Integer.numberOfLeadingZeros(BufferPool.BUFFER_SIZE / 4 + 1);
+    // the number of neighbouring subtrees buildheap copies into memory at once
+    private static final int GROUP_SUBTREES = 16;
     /**
      * Create a MaxHeap, setting the bufferPool to communicate with, and the
      * size of the heap.
@@ -69,15 +74,142 @@ public class MaxHeap {
         return (pos-1)/2;
     }
     /**
-     * Heapify the contents of the heap by calling siftdown on all internal
-     * nodes.
+     * Heapify the contents of the heap.  The bottom SUBTREE_LEVELS levels are
+     * split into subtrees small enough to fit in one block.  These are copied
+     * into memory GROUP_SUBTREES at a time, heapified there and written back,
+     * so each block they span is read about twice instead of once per
+     * siftdown.  The nodes above them are then merged in on top, each once
+     * both of its children are heaps.
      */
     public void buildheap()
     {
-        for (long i=n/2-1; i>=0; i--)
+        if (n < 2)
+            return;
+        int levels = 64 - Long.numberOfLeadingZeros(n);
+        int rootLevel = Math.max(0, levels - SUBTREE_LEVELS);
+        long firstRoot = (1L << rootLevel) - 1;
+        long lastRoot = Math.min((1L << (rootLevel + 1)) - 2, n - 1);
+        int subtreeRecords = (1 << SUBTREE_LEVELS) - 1;
+        byte[] group = new byte[GROUP_SUBTREES * subtreeRecords * 4];
+        byte[] subtree = new byte[subtreeRecords * 4];
+        for (long r = firstRoot; r <= lastRoot; r += GROUP_SUBTREES)
+            buildSubtrees(r, (int)Math.min(GROUP_SUBTREES, lastRoot - r + 1),
+                group, subtree);
+        if (firstRoot > 0)
+            mergeSubtrees(0, firstRoot);
+    }
+    /**
+     * Heapify the subtree rooted at i, whose subtrees rooted at firstRoot and
+     * beyond are already heaps.  Both children are merged first, then i is
+     * sifted down, so each merge works on blocks the last one just used.
+     * @param i the position of the root of the subtree
+     * @param firstRoot the position of the first subtree built in memory
+     */
+    private void mergeSubtrees(long i, long firstRoot)
+    {
+        if (i >= firstRoot)
+            return;
+        mergeSubtrees(2*i + 1, firstRoot);
+        mergeSubtrees(2*i + 2, firstRoot);
+        siftdown(i);
+    }
+    /**
+     * Heapify count neighbouring subtrees in memory, starting with the one
+     * rooted at first.  Level k of the subtree rooted at r is the run of up
+     * to 2^k records starting at (r+1)*2^k - 1, so level k of all of them
+     * together is one run of up to count*2^k records, which is read and
+     * written back in one pass.
+     * @param first the position of the root of the first subtree
+     * @param count the number of subtrees, at most GROUP_SUBTREES
+     * @param group the array to hold the subtrees' records
+     * @param subtree the array to heapify one subtree in
+     */
+    private void buildSubtrees(long first, int count, byte[] group,
+        byte[] subtree)
+    {
+        int[] levelPos = new int[SUBTREE_LEVELS];
+        int[] levelLen = new int[SUBTREE_LEVELS];
+        int numLevels = 0;
+        int pos = 0;
+        while (numLevels < SUBTREE_LEVELS
+            && ((first + 1) << numLevels) - 1 < n)
         {
-            siftdown(i);
+            long start = ((first + 1) << numLevels) - 1;
+            levelPos[numLevels] = pos;
+            levelLen[numLevels] =
+                (int)Math.min((long)count << numLevels, n - start);
+            buffPool.getRecords(start, levelLen[numLevels], group, pos * 4);
+            pos += levelLen[numLevels];
+            numLevels++;
         }
+        boolean changed = false;
+        for (int g = 0; g < count; g++)
+        {
+            // gather subtree g level by level, which puts it in heap order
+            int size = 0;
+            for (int k = 0; k < numLevels && (g << k) < levelLen[k]; k++)
+            {
+                int len = Math.min(1 << k, levelLen[k] - (g << k));
+                System.arraycopy(group, (levelPos[k] + (g << k)) * 4,
+                    subtree, size * 4, len * 4);
+                size += len;
+            }
+            boolean moved = false;
+            for (int i = size/2 - 1; i >= 0; i--)
+                moved |= siftdown(subtree, size, i);
+            if (!moved)
+                continue;
+            size = 0;
+            for (int k = 0; k < numLevels && (g << k) < levelLen[k]; k++)
+            {
+                int len = Math.min(1 << k, levelLen[k] - (g << k));
+                System.arraycopy(subtree, size * 4,
+                    group, (levelPos[k] + (g << k)) * 4, len * 4);
+                size += len;
+            }
+            changed = true;
+        }
+        if (!changed)
+            return;
+        for (int k = 0; k < numLevels; k++)
+            buffPool.setRecords(((first + 1) << k) - 1, levelLen[k], group,
+                levelPos[k] * 4);
+    }
+    /**
+     * Sift an element of an in-memory heap down, swapping it with its largest
+     * child until it is larger than both its children.
+     * @param recs the records of the heap, 4 bytes each
+     * @param count the number of records in the heap
+     * @param i the position of the element to sift down
+     * @return whether any records were moved
+     */
+    private boolean siftdown(byte[] recs, int count, int i)
+    {
+        boolean moved = false;
+        byte[] temp = new byte[4];
+        while (i < count/2) {
+            int j = 2*i + 1;
+            if ((j < count - 1) && (key(recs, j) < key(recs, j + 1)))
+                j++; // index of child w/ greater value
+            if (key(recs, i) >= key(recs, j))
+                return moved;
+            System.arraycopy(recs, i*4, temp, 0, 4);
+            System.arraycopy(recs, j*4, recs, i*4, 4);
+            System.arraycopy(temp, 0, recs, j*4, 4);
+            moved = true;
+            i = j;  // Move down
+        }
+        return moved;
+    }
+    /**
+     * Return the key of a record in an in-memory heap.
+     * @param recs the records of the heap, 4 bytes each
+     * @param i the position of the record
+     * @return the key of the record
+     */
+    private short key(byte[] recs, int i)
+    {
+        return buffPool.makeShort(recs[i*4], recs[i*4 + 1]);
     }
 
     /**
@@ -88,14 +220,20 @@ public class MaxHeap {
     private void siftdown(long i) {
         assert (i >= 0) && (i < n) :
             "Illegal heap position";
+        long[] children = new long[2];
+        short[] keys = new short[2];
         while (!isLeaf(i)) {
             long j = leftchild(i);
-            if ((j<(n-1)) &&
-                (buffPool.requestKey(j) < buffPool.requestKey(j + 1)))
-                j++; // index of child w/ greater value
-            if (buffPool.requestKey(i) >= (buffPool.requestKey(j)))
+            if (j<(n-1)) {
+                // both children sit next to each other, fetch them together
+                children[0] = j;
+                children[1] = j + 1;
+                buffPool.requestKeys(children, keys);
+                if (keys[0] < keys[1])
+                    j++; // index of child w/ greater value
+            }
+            if (!buffPool.compareAndSwapIfGreater(i, j))
                 return;
-            swap(i, j);
             i = j;  // Move down
         }
     }
@@ -122,6 +260,23 @@ public class MaxHeap {
         if (n != 0) siftdown(0);
         return buffPool.getRecord(n);
     }
+    /**
+     * Remove the max element from the heap, moving the last element to the
+     * root and moving the size marker back one.  Unlike removemax, the max
+     * isn't written to the end of the heap, so the records past the size
+     * marker are left as they were.
+     * @precondition the heap isn't empty
+     * @return the record removed, stored in a byte array
+     */
+    public byte[] takemax() {
+        assert n > 0 : "Removing from empty heap";
+        byte[] max = buffPool.getRecord(0);
+        if (--n != 0) {
+            buffPool.setRecord(0, buffPool.getRecord(n));
+            siftdown(0);
+        }
+        return max;
+    }
     /**
      * Insert a record into the heap.  The record will start at the bottome and
      * sift its way up to the correct position.
@@ -132,11 +287,9 @@ public class MaxHeap {
         assert n < size : "Heap is full";
         long curr = n++;
         buffPool.setRecord(curr, val);
-        // Siftup until curr parent's key > curr key
+        // Siftup until curr parent's key >= curr key
         while ((curr != 0)  &&
-            (buffPool.requestKey(curr) > (buffPool.requestKey(parent(curr)))
-                )) {
-            swap(curr, parent(curr));
+            buffPool.compareAndSwapIfGreater(parent(curr), curr)) {
             curr = parent(curr);
         }
     }
@@ -148,6 +301,16 @@ public class MaxHeap {
       for (int i=0; i<size; i++)  // Now sort
           this.removemax(); // Put max at end of heap
     }
+    /**
+     * Sort the elements in the heap by removing the max once per element,
+     * passing each removed record to the output writer as it comes off the
+     * heap.  The records are not sorted in place.
+     * @param out the writer the sorted records are streamed to
+     */
+    public void heapsort(SortedOutputWriter out) {
+      for (long i=0; i<size; i++)
+          out.write(this.takemax());
+    }
 
 
 }
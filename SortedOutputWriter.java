@@ -0,0 +1,191 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streams sorted records to an output file in large blocks.  Two blocks are
+ * kept in memory: while one is being written to the file by a background
+ * thread, the other is filled with the next records, so the sort does not
+ * wait on the disk unless both blocks are full.  Records arrive largest
+ * first from the heap, so in ascending order the file is filled from the
+ * back to the front.
+ *  @author agent (agent@local)
+ *  @version Oct 19, 2026
+ */
+public class SortedOutputWriter
+{
+    /**
+     * A constant for the number of bytes in each output block
+     */
+    public static final int BLOCK_SIZE = BufferPool.BUFFER_SIZE * 16;
+
+    //the file the sorted records are written to
+    private RandomAccessFile outFile;
+    //the thread that writes full blocks to the file
+    private ExecutorService writerThread;
+    //the write of the previous block, if one is still in progress
+    private Future<?> pendingWrite;
+    //the block currently being filled
+    private byte[] current;
+    //the block that is free once the pending write finishes
+    private byte[] spare;
+    //the number of bytes filled in the current block
+    private int filled;
+    //the number of records written so far
+    private long numWritten;
+    //the total number of records that will be written
+    private long numRecords;
+    //whether the records are written smallest first
+    private boolean ascending;
+    //number of blocks written to the file
+    private int blockWrites = 0;
+
+    /**
+     * Create a new SortedOutputWriter, sizing the output file to hold all
+     * of the records.
+     * @param pFile the file to write the sorted records to
+     * @param pNumRecords the number of records that will be written
+     * @param pAscending whether the file should be sorted smallest first,
+     * given records that arrive largest first
+     */
+    public SortedOutputWriter(File pFile, long pNumRecords, boolean pAscending)
+    {
+        numRecords = pNumRecords;
+        ascending = pAscending;
+        current = new byte[BLOCK_SIZE];
+        spare = new byte[BLOCK_SIZE];
+        //a daemon thread, so a sort that fails before close() can still exit
+        writerThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "SortedOutputWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try
+        {
+            outFile = new RandomAccessFile(pFile, "rw");
+            outFile.setLength(numRecords * 4);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not open the output file");
+            e.printStackTrace();
+        }
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Add the next record to the output.  The record should be an array of 4
+     * bytes.
+     * @param record the record to write
+     */
+    public void write(byte[] record)
+    {
+        assert numWritten < numRecords : "Output file is full";
+        if (ascending)
+            System.arraycopy(record, 0, current, BLOCK_SIZE - filled - 4, 4);
+        else
+            System.arraycopy(record, 0, current, filled, 4);
+        filled += 4;
+        numWritten++;
+        if (filled == BLOCK_SIZE)
+            writeBlock();
+    }
+    /**
+     * Hand the current block to the writer thread and start filling the
+     * spare block.  Waits for the previous block to finish writing first.
+     */
+    private void writeBlock()
+    {
+        waitForPendingWrite();
+        final byte[] block = current;
+        final int length = filled;
+        final int start;
+        final long filePos;
+        if (ascending)
+        {
+            start = BLOCK_SIZE - filled;
+            filePos = (numRecords - numWritten) * 4;
+        }
+        else
+        {
+            start = 0;
+            filePos = (numWritten * 4) - filled;
+        }
+        pendingWrite = writerThread.submit(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    outFile.seek(filePos);
+                    outFile.write(block, start, length);
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Failed to write to output file");
+                    e.printStackTrace();
+                }
+            }
+        });
+        blockWrites++;
+        current = spare;
+        spare = block;
+        filled = 0;
+    }
+    /**
+     * Block until the previous block has been written to the file.
+     */
+    private void waitForPendingWrite()
+    {
+        if (pendingWrite == null)
+            return;
+        try
+        {
+            pendingWrite.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            System.out.println("Failed to write to output file");
+            e.printStackTrace();
+        }
+        pendingWrite = null;
+    }
+    /**
+     * Write out any records left in the current block, wait for all writes to
+     * finish, and close the output file.
+     */
+    public void close()
+    {
+        if (filled > 0)
+            writeBlock();
+        waitForPendingWrite();
+        writerThread.shutdown();
+        try
+        {
+            outFile.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not close the output file");
+            e.printStackTrace();
+        }
+    }
+    /**
+     * Return the number of blocks written to the output file.
+     * @return block writes
+     */
+    public int getBlockWrites() {
+        return blockWrites;
+    }
+}
@@ -50,9 +50,24 @@ public class heapsort
      *        args[0] the binary file to sort
      *        args[1] the number of buffers to be used in a buffer pool
      *        args[2] the name of the stat file for outputting statistics
+     *        args[3] optional, the file to write the sorted records to,
+     *                leaving the binary file unchanged, or - to sort in place
+     *        args[4] optional, the memory budget in bytes the buffer pool
+     *                may resize itself within, starting from args[1]
+     *                buffers, or - to keep args[1] buffers
+     *        args[5] optional, desc to write the output file largest first
+     *                instead of smallest first
      */
     public static void main(String[] args)
     {
-        Client client = new Client(args[0], args[1], args[2]);
+        String outName = null;
+        if (args.length > 3 && !args[3].equals("-"))
+            outName = args[3];
+        String memoryBudget = null;
+        if (args.length > 4 && !args[4].equals("-"))
+            memoryBudget = args[4];
+        boolean descending = args.length > 5 && args[5].equals("desc");
+        Client client = new Client(args[0], args[1], args[2], outName,
+            memoryBudget, descending);
     }
 }